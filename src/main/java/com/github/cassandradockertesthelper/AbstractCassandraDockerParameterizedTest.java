@@ -159,7 +159,7 @@ public abstract class AbstractCassandraDockerParameterizedTest
     public String spinUpNewCassandraDockerBox()
     {
         logger.info("Spinning up Cassandra Docker Box:--------------------------------\r\n\tCassandra version:" + this.cassandraVersion + " for test: " + this.getTestName());
-        String dockerId = DockerHelper.spinUpDockerBox(dockerFile.getName(), dockerFile);
+        String dockerId = DockerHelper.spinUpDockerBox(dockerFile.getName(), dockerFile, this.getTestMethodName());
         dockerIds.add(dockerId);
         String ip = DockerHelper.getDockerIp(dockerId);
         cassandraSeeds.add(ip);
@@ -245,6 +245,19 @@ public abstract class AbstractCassandraDockerParameterizedTest
         return name.getMethodName();
     }
 
+    /**
+     * Gets the name of the specific test that is running, without the
+     * parameter; the same for every Cassandra version the test runs against.
+     *
+     * @return The name of the specific test that is running.
+     */
+    public String getTestMethodName()
+    {
+        String testName = getTestName();
+        int paramStart = testName.indexOf('[');
+        return paramStart == -1 ? testName : testName.substring(0, paramStart);
+    }
+
     /**
      * Cassandra versions to test against. See comment on the field above.
      *
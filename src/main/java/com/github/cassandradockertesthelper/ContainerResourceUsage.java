@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016 Jeffrey DeYoung.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cassandradockertesthelper;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregated resource usage (CPU, memory, block I/O and network) for one or
+ * more docker containers. Populated from the docker stats stream when stats
+ * sampling is enabled in DockerHelper.
+ *
+ * @author jeffrey
+ */
+public class ContainerResourceUsage
+{
+
+    /**
+     * Number of stats samples that have been aggregated.
+     */
+    private long samples;
+
+    /**
+     * Total CPU time used, in nanoseconds.
+     */
+    private long cpuNanos;
+
+    /**
+     * Highest memory RSS seen in any single sample, in bytes.
+     */
+    private long peakMemoryRss;
+
+    /**
+     * Total bytes read from block devices.
+     */
+    private long blockReadBytes;
+
+    /**
+     * Total bytes written to block devices.
+     */
+    private long blockWriteBytes;
+
+    /**
+     * Total bytes received over the network.
+     */
+    private long networkRxBytes;
+
+    /**
+     * Total bytes sent over the network.
+     */
+    private long networkTxBytes;
+
+    /**
+     * Whether the docker daemon reported network usage at all.
+     */
+    private boolean networkAvailable;
+
+    /**
+     * Updates this usage with a single sample from the docker stats stream.
+     * Docker reports CPU, block I/O and network as cumulative counters, so we
+     * keep the highest value seen; a stopped container reports an all zero
+     * sample that must not wipe out what it used. Memory keeps the peak.
+     *
+     * @param cpuStats The "cpu_stats" section of the sample.
+     * @param memoryStats The "memory_stats" section of the sample.
+     * @param blkioStats The "blkio_stats" section of the sample.
+     * @param networkStats The network section of the sample; either a single
+     * interface ("network") or a map of interface name to interface stats
+     * ("networks"). Null when the docker daemon doesn't report it.
+     */
+    synchronized void update(Map<String, Object> cpuStats, Map<String, Object> memoryStats, Map<String, Object> blkioStats, Map<String, Object> networkStats)
+    {
+        samples++;
+        Map<String, Object> cpuUsage = getMap(cpuStats, "cpu_usage");
+        if (cpuUsage != null)
+        {
+            cpuNanos = Math.max(cpuNanos, getLong(cpuUsage, "total_usage"));
+        }
+        if (memoryStats != null)
+        {
+            Map<String, Object> memoryDetail = getMap(memoryStats, "stats");
+            long rss = memoryDetail != null && memoryDetail.containsKey("rss") ? getLong(memoryDetail, "rss") : getLong(memoryStats, "usage");
+            peakMemoryRss = Math.max(peakMemoryRss, rss);
+        }
+        if (blkioStats != null && blkioStats.get("io_service_bytes_recursive") instanceof List)
+        {
+            long read = 0;
+            long write = 0;
+            for (Object entry : (List<?>) blkioStats.get("io_service_bytes_recursive"))
+            {
+                Map<String, Object> op = asMap(entry);
+                if (op != null)
+                {
+                    if ("Read".equalsIgnoreCase(String.valueOf(op.get("op"))))
+                    {
+                        read += getLong(op, "value");
+                    } else if ("Write".equalsIgnoreCase(String.valueOf(op.get("op"))))
+                    {
+                        write += getLong(op, "value");
+                    }
+                }
+            }
+            blockReadBytes = Math.max(blockReadBytes, read);
+            blockWriteBytes = Math.max(blockWriteBytes, write);
+        }
+        if (networkStats != null)
+        {
+            long rx = 0;
+            long tx = 0;
+            if (networkStats.containsKey("rx_bytes"))
+            {
+                rx = getLong(networkStats, "rx_bytes");
+                tx = getLong(networkStats, "tx_bytes");
+            } else
+            {
+                for (Object value : networkStats.values())
+                {
+                    Map<String, Object> networkInterface = asMap(value);
+                    if (networkInterface != null)
+                    {
+                        rx += getLong(networkInterface, "rx_bytes");
+                        tx += getLong(networkInterface, "tx_bytes");
+                    }
+                }
+            }
+            networkAvailable = true;
+            networkRxBytes = Math.max(networkRxBytes, rx);
+            networkTxBytes = Math.max(networkTxBytes, tx);
+        }
+    }
+
+    /**
+     * Adds another usage to this one. Counters are summed; peak memory is the
+     * highest peak of any single container.
+     *
+     * @param other Usage to add to this one.
+     */
+    synchronized void add(ContainerResourceUsage other)
+    {
+        synchronized (other)
+        {
+            samples += other.samples;
+            cpuNanos += other.cpuNanos;
+            peakMemoryRss = Math.max(peakMemoryRss, other.peakMemoryRss);
+            blockReadBytes += other.blockReadBytes;
+            blockWriteBytes += other.blockWriteBytes;
+            networkRxBytes += other.networkRxBytes;
+            networkTxBytes += other.networkTxBytes;
+            networkAvailable |= other.networkAvailable;
+        }
+    }
+
+    /**
+     * Gets a nested map out of a stats section.
+     *
+     * @param map Stats section to look in.
+     * @param key Key of the nested map.
+     * @return The nested map, or null if it doesn't exist.
+     */
+    private static Map<String, Object> getMap(Map<String, Object> map, String key)
+    {
+        return map == null ? null : asMap(map.get(key));
+    }
+
+    /**
+     * Casts a value from a stats section to a map, if it is one.
+     *
+     * @param value Value to cast.
+     * @return The value as a map, or null if it isn't a map.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value)
+    {
+        return value instanceof Map ? (Map<String, Object>) value : null;
+    }
+
+    /**
+     * Gets a numeric value out of a stats section.
+     *
+     * @param map Stats section to look in.
+     * @param key Key of the value.
+     * @return The value, or 0 if it doesn't exist.
+     */
+    private static long getLong(Map<String, Object> map, String key)
+    {
+        Object value = map.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * Number of stats samples that have been aggregated.
+     *
+     * @return the samples
+     */
+    public synchronized long getSamples()
+    {
+        return samples;
+    }
+
+    /**
+     * Total CPU time used, in nanoseconds.
+     *
+     * @return the cpuNanos
+     */
+    public synchronized long getCpuNanos()
+    {
+        return cpuNanos;
+    }
+
+    /**
+     * Highest memory RSS seen in any single container, in bytes.
+     *
+     * @return the peakMemoryRss
+     */
+    public synchronized long getPeakMemoryRss()
+    {
+        return peakMemoryRss;
+    }
+
+    /**
+     * Total bytes read from block devices.
+     *
+     * @return the blockReadBytes
+     */
+    public synchronized long getBlockReadBytes()
+    {
+        return blockReadBytes;
+    }
+
+    /**
+     * Total bytes written to block devices.
+     *
+     * @return the blockWriteBytes
+     */
+    public synchronized long getBlockWriteBytes()
+    {
+        return blockWriteBytes;
+    }
+
+    /**
+     * Whether network usage was reported by the docker daemon. When false, the
+     * network byte counts are not meaningful.
+     *
+     * @return the networkAvailable
+     */
+    public synchronized boolean isNetworkAvailable()
+    {
+        return networkAvailable;
+    }
+
+    /**
+     * Total bytes received over the network.
+     *
+     * @return the networkRxBytes
+     */
+    public synchronized long getNetworkRxBytes()
+    {
+        return networkRxBytes;
+    }
+
+    /**
+     * Total bytes sent over the network.
+     *
+     * @return the networkTxBytes
+     */
+    public synchronized long getNetworkTxBytes()
+    {
+        return networkTxBytes;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "cpu: " + (cpuNanos / 1000000) + "ms, peak rss: " + (peakMemoryRss / (1024 * 1024)) + "MB, block read/write: "
+                + (blockReadBytes / 1024) + "KB/" + (blockWriteBytes / 1024) + "KB, network rx/tx: "
+                + (networkAvailable ? (networkRxBytes / 1024) + "KB/" + (networkTxBytes / 1024) + "KB" : "n/a") + ", samples: " + samples;
+    }
+}
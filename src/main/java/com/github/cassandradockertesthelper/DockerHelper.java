@@ -16,16 +16,33 @@
 package com.github.cassandradockertesthelper;
 
 import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.DockerException;
 import com.github.dockerjava.api.NotFoundException;
 import com.github.dockerjava.api.command.CreateContainerResponse;
 import com.github.dockerjava.api.command.InspectContainerResponse;
 import com.github.dockerjava.api.model.BuildResponseItem;
 import com.github.dockerjava.api.model.Info;
+import com.github.dockerjava.api.model.Statistics;
 import com.github.dockerjava.api.model.Ulimit;
 import com.github.dockerjava.core.DockerClientBuilder;
 import com.github.dockerjava.core.DockerClientConfig;
+import com.github.dockerjava.core.async.ResultCallbackTemplate;
 import com.github.dockerjava.core.command.BuildImageResultCallback;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,6 +71,73 @@ public class DockerHelper
      */
     private static final DockerClient docker = DockerClientBuilder.getInstance(config).build();
 
+    /**
+     * Docker client used only for the stats stream. Pinned to API 1.20, the
+     * last version that reports a single "network" section; newer versions
+     * report "networks", which docker-java 2.1.3 doesn't map.
+     */
+    private static final DockerClient statsDocker = DockerClientBuilder.getInstance(DockerClientConfig.createDefaultConfigBuilder()
+            .withUri("http://localhost:2375").withVersion("1.20").build()).build();
+
+    /**
+     * System property that, when set, points at a (possibly shared) directory
+     * of saved docker images. Images are stored as tarballs keyed by the hash
+     * of their docker file and build context, so a fresh machine can load them
+     * instead of rebuilding. Ex:
+     * "-Dcom.github.cassandradockertesthelper.imagecache=/mnt/shared/dockercache"
+     */
+    public static final String IMAGE_CACHE_PROPERTY = "com.github.cassandradockertesthelper.imagecache";
+
+    /**
+     * Set once saving an image to the image cache has failed (read only share,
+     * full disk, etc.), so we don't keep exporting images for nothing.
+     */
+    private static volatile boolean imageCacheSaveFailed = false;
+
+    /**
+     * System property that, when set to true, turns on resource usage sampling
+     * for every container started by this class. A summary is logged when the
+     * JVM exits. Ex: "-Dcom.github.cassandradockertesthelper.samplestats=true"
+     */
+    public static final String SAMPLE_STATS_PROPERTY = "com.github.cassandradockertesthelper.samplestats";
+
+    /**
+     * Whether or not resource usage sampling is turned on. Off by default.
+     */
+    private static volatile boolean statsSamplingEnabled = false;
+
+    /**
+     * Whether the shutdown hook that logs the resource usage summary has been
+     * registered yet.
+     */
+    private static boolean statsSummaryHookRegistered = false;
+
+    /**
+     * Whether we have already warned that the docker daemon doesn't report
+     * network usage in a form we can read.
+     */
+    private static volatile boolean networkStatsWarned = false;
+
+    /**
+     * Resource usage, image and test for each container we have sampled, by
+     * container id.
+     */
+    private static final Map<String, SampledContainer> sampledContainers = new ConcurrentHashMap<>();
+
+    /**
+     * Open stats streams for each running container we are sampling, by
+     * container id.
+     */
+    private static final Map<String, Closeable> statsStreams = new ConcurrentHashMap<>();
+
+    static
+    {
+        if (Boolean.getBoolean(SAMPLE_STATS_PROPERTY))
+        {
+            setStatsSamplingEnabled(true);
+        }
+    }
+
     /**
      * Spins up a new docker box. Important: don't forget to spin it back down
      * in a finally block.
@@ -65,6 +149,23 @@ public class DockerHelper
      * perform actions on it.
      */
     public static String spinUpDockerBox(String dockerBoxName, File baseFile)
+    {
+        return spinUpDockerBox(dockerBoxName, baseFile, null);
+    }
+
+    /**
+     * Spins up a new docker box. Important: don't forget to spin it back down
+     * in a finally block.
+     *
+     * @param dockerBoxName Name of the docker box to start.
+     * @param baseFile Base file to create the docker box from.
+     * @param testName Name of the test using this box; used to group resource
+     * usage when stats sampling is enabled. May be null.
+     * @return A docker container Id that can be used to reference the spun up
+     * box. It is important to save this so you can spin it back down and
+     * perform actions on it.
+     */
+    public static String spinUpDockerBox(String dockerBoxName, File baseFile, String testName)
     {
 
         if (baseFile == null || !baseFile.exists())
@@ -85,7 +186,15 @@ public class DockerHelper
         Ulimit[] ulimits = new Ulimit[1];
         ulimits[0] = new Ulimit("nofile", 262144, 262144);
 
-        String imageId = docker.buildImageCmd(baseFile).exec(callback).awaitImageId();
+        String imageId;
+        File imageCacheDir = getImageCacheDir();
+        if (imageCacheDir == null)
+        {
+            imageId = docker.buildImageCmd(baseFile).exec(callback).awaitImageId();
+        } else
+        {
+            imageId = loadOrBuildCachedImage(dockerBoxName, baseFile, imageCacheDir, callback);
+        }
 
         CreateContainerResponse container = docker.createContainerCmd(dockerBoxName)
                 .withCmd("/sbin/my_init")
@@ -97,6 +206,17 @@ public class DockerHelper
         logger.trace("Container id: " + container.getId());
         logger.trace("ImageId: " + imageId);
         docker.startContainerCmd(container.getId()).exec();
+        if (statsSamplingEnabled)
+        {
+            try
+            {
+                startStatsSampling(container.getId(), dockerBoxName, testName);
+            } catch (RuntimeException e)
+            {
+                //sampling is only diagnostics; don't fail the test (and leak a running box) because of it
+                logger.warn("Could not start resource usage sampling for containerId: " + container.getId(), e);
+            }
+        }
         try
         {
             Thread.sleep(1500);//sleep for a second and a half to let it come up on line before proceeding
@@ -153,8 +273,414 @@ public class DockerHelper
     public static void spinDownDockerBox(String containerId)
     {
         logger.debug("Spinning down docker box with containerId: " + containerId);
-        docker.stopContainerCmd(containerId).exec();
-        docker.waitContainerCmd(containerId).exec();
+        try
+        {
+            docker.stopContainerCmd(containerId).exec();
+            docker.waitContainerCmd(containerId).exec();
+        } finally
+        {
+            stopStatsSampling(containerId);
+        }
+    }
+
+    /**
+     * Turns resource usage sampling on or off for containers started after
+     * this call. When turned on, a summary of all sampled usage is logged
+     * when the JVM exits.
+     *
+     * @param enabled True to sample resource usage, false otherwise.
+     */
+    public static synchronized void setStatsSamplingEnabled(boolean enabled)
+    {
+        if (enabled && !statsSummaryHookRegistered)
+        {
+            statsSummaryHookRegistered = true;
+            Runtime.getRuntime().addShutdownHook(new Thread("docker-stats-summary")
+            {
+                @Override
+                public void run()
+                {
+                    logStatsSummary();
+                }
+            });
+        }
+        statsSamplingEnabled = enabled;
+    }
+
+    /**
+     * Subscribes to the docker stats stream for a container and aggregates
+     * each sample into its resource usage.
+     *
+     * @param containerId Container to sample.
+     * @param dockerBoxName Image (Cassandra version) name of the container.
+     * @param testName Test using the container; may be null.
+     */
+    private static void startStatsSampling(String containerId, String dockerBoxName, String testName)
+    {
+        ContainerResourceUsage usage = new ContainerResourceUsage();
+        statsStreams.put(containerId, statsDocker.statsCmd().withContainerId(containerId).exec(new StatsCallback(usage)));
+        sampledContainers.put(containerId, new SampledContainer(usage, dockerBoxName, testName == null ? "unknown" : testName));
+    }
+
+    /**
+     * Callback for the docker stats stream; aggregates each sample into a
+     * container's resource usage.
+     */
+    private static class StatsCallback extends ResultCallbackTemplate<StatsCallback, Statistics>
+    {
+
+        /**
+         * Usage to aggregate samples into.
+         */
+        private final ContainerResourceUsage usage;
+
+        /**
+         * Constructor.
+         *
+         * @param usage Usage to aggregate samples into.
+         */
+        public StatsCallback(ContainerResourceUsage usage)
+        {
+            this.usage = usage;
+        }
+
+        @Override
+        public void onNext(Statistics stats)
+        {
+            if (stats.getNetworkStats() == null && !networkStatsWarned)
+            {
+                //shouldn't happen with the stats client pinned to API 1.20, but don't silently report 0
+                networkStatsWarned = true;
+                logger.warn("Docker daemon is not reporting network stats in a form we can read; network usage will be reported as n/a.");
+            }
+            usage.update(stats.getCpuStats(), stats.getMemoryStats(), stats.getBlkioStats(), stats.getNetworkStats());
+        }
+    }
+
+    /**
+     * A container we are sampling, along with what it was started for.
+     */
+    private static class SampledContainer
+    {
+
+        /**
+         * Resource usage of the container.
+         */
+        private final ContainerResourceUsage usage;
+
+        /**
+         * Image (Cassandra version) name of the container.
+         */
+        private final String imageName;
+
+        /**
+         * Test that started the container.
+         */
+        private final String testName;
+
+        /**
+         * Constructor.
+         *
+         * @param usage Resource usage of the container.
+         * @param imageName Image (Cassandra version) name of the container.
+         * @param testName Test that started the container.
+         */
+        public SampledContainer(ContainerResourceUsage usage, String imageName, String testName)
+        {
+            this.usage = usage;
+            this.imageName = imageName;
+            this.testName = testName;
+        }
+    }
+
+    /**
+     * Closes the stats stream for a container, if we are sampling it. The
+     * usage collected so far is kept.
+     *
+     * @param containerId Container to stop sampling.
+     */
+    private static void stopStatsSampling(String containerId)
+    {
+        Closeable stream = statsStreams.remove(containerId);
+        if (stream != null)
+        {
+            try
+            {
+                stream.close();
+            } catch (IOException e)
+            {
+                logger.debug("Could not close stats stream for containerId: " + containerId, e);
+            }
+        }
+    }
+
+    /**
+     * Gets the sampled resource usage for each container, by container id.
+     *
+     * @return Resource usage by container id.
+     */
+    public static Map<String, ContainerResourceUsage> getResourceUsageByContainer()
+    {
+        Map<String, ContainerResourceUsage> toReturn = new TreeMap<>();
+        for (Map.Entry<String, SampledContainer> entry : sampledContainers.entrySet())
+        {
+            toReturn.put(entry.getKey(), entry.getValue().usage);
+        }
+        return toReturn;
+    }
+
+    /**
+     * Gets the sampled resource usage summed across all containers of each
+     * image (Cassandra version).
+     *
+     * @return Resource usage by image name.
+     */
+    public static Map<String, ContainerResourceUsage> getResourceUsageByImage()
+    {
+        return groupResourceUsage(true);
+    }
+
+    /**
+     * Gets the sampled resource usage summed across all containers of each
+     * test.
+     *
+     * @return Resource usage by test name.
+     */
+    public static Map<String, ContainerResourceUsage> getResourceUsageByTest()
+    {
+        return groupResourceUsage(false);
+    }
+
+    /**
+     * Sums container resource usage into groups.
+     *
+     * @param byImage True to group by image name, false to group by test name.
+     * @return Summed resource usage, by group name.
+     */
+    private static Map<String, ContainerResourceUsage> groupResourceUsage(boolean byImage)
+    {
+        Map<String, ContainerResourceUsage> toReturn = new TreeMap<>();
+        for (SampledContainer container : sampledContainers.values())
+        {
+            String group = byImage ? container.imageName : container.testName;
+            ContainerResourceUsage total = toReturn.get(group);
+            if (total == null)
+            {
+                total = new ContainerResourceUsage();
+                toReturn.put(group, total);
+            }
+            total.add(container.usage);
+        }
+        return toReturn;
+    }
+
+    /**
+     * Logs a summary of all sampled resource usage, by Cassandra version and
+     * by test. Called automatically at JVM exit when sampling is enabled.
+     */
+    public static void logStatsSummary()
+    {
+        if (sampledContainers.isEmpty())
+        {
+            return;
+        }
+        StringBuilder sb = new StringBuilder("Docker resource usage summary:--------------------------------");
+        sb.append("\r\n\tBy image:");
+        for (Map.Entry<String, ContainerResourceUsage> entry : getResourceUsageByImage().entrySet())
+        {
+            sb.append("\r\n\t\t").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        sb.append("\r\n\tBy test:");
+        for (Map.Entry<String, ContainerResourceUsage> entry : getResourceUsageByTest().entrySet())
+        {
+            sb.append("\r\n\t\t").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        logger.info(sb.toString());
+    }
+
+    /**
+     * Gets the image cache directory, if one has been configured via the
+     * IMAGE_CACHE_PROPERTY system property. Creates the directory if it does
+     * not exist yet.
+     *
+     * @return The image cache directory, or null if image caching is not
+     * enabled.
+     */
+    public static File getImageCacheDir()
+    {
+        String cacheDir = System.getProperty(IMAGE_CACHE_PROPERTY);
+        if (cacheDir == null || cacheDir.isEmpty())
+        {
+            return null;
+        }
+        File dir = new File(cacheDir);
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            logger.warn("Could not create docker image cache directory: " + dir.getAbsolutePath() + "; building images without the cache.");
+            return null;
+        }
+        return dir;
+    }
+
+    /**
+     * Loads a docker image from the image cache if a tarball exists for the
+     * current contents of the docker file; otherwise builds the image and
+     * saves it back to the cache for the next machine to use. Images are also
+     * tagged with the docker file hash, so once an image is in the local
+     * docker daemon it is used directly; it is only saved if the cache doesn't
+     * have it yet.
+     *
+     * @param dockerBoxName Name (tag) of the docker image.
+     * @param baseFile Docker file the image is built from.
+     * @param imageCacheDir Directory containing the cached image tarballs.
+     * @param callback Callback to use if the image needs to be built.
+     * @return The image id of the loaded or built image.
+     */
+    private static String loadOrBuildCachedImage(String dockerBoxName, File baseFile, File imageCacheDir, BuildImageResultCallback callback)
+    {
+        String hash = getDockerFileHash(baseFile);
+        File tarball = getCachedImageFile(imageCacheDir, dockerBoxName, hash);
+        String imageId = getLocalImageId(dockerBoxName + ":" + hash);
+        if (imageId == null && tarball.isFile())
+        {
+            logger.debug("Loading docker image: " + dockerBoxName + " from cache: " + tarball.getAbsolutePath());
+            //stream the tarball straight to docker; these are several hundred megs, so don't read them into memory
+            try (InputStream in = new FileInputStream(tarball))
+            {
+                docker.loadImageCmd(in).exec();
+                imageId = getLocalImageId(dockerBoxName + ":" + hash);
+                if (imageId == null)
+                {
+                    logger.warn("Cached docker image: " + tarball.getAbsolutePath() + " did not contain " + dockerBoxName + ":" + hash + "; rebuilding it.");
+                }
+            } catch (IOException | DockerException e)
+            {
+                logger.warn("Could not load cached docker image: " + tarball.getAbsolutePath() + "; rebuilding it.", e);
+            }
+        }
+        if (imageId != null)
+        {
+            //already in the local daemon; just make sure the plain name points at this version
+            docker.tagImageCmd(imageId, dockerBoxName, "latest").withForce().exec();
+        } else
+        {
+            imageId = docker.buildImageCmd(baseFile).withTag(dockerBoxName).exec(callback).awaitImageId();
+            docker.tagImageCmd(imageId, dockerBoxName, hash).withForce().exec();
+        }
+        if (!tarball.isFile() && !imageCacheSaveFailed)
+        {
+            saveCachedImage(dockerBoxName + ":" + hash, tarball, imageCacheDir);
+        }
+        return imageId;
+    }
+
+    /**
+     * Saves a docker image to the image cache. Failures are logged and turn
+     * off saving for the rest of the run.
+     *
+     * @param imageName Name and tag of the image to save; only this tag is
+     * saved, not the rest of the repository.
+     * @param tarball File to save the image to.
+     * @param imageCacheDir Directory containing the cached image tarballs.
+     */
+    private static void saveCachedImage(String imageName, File tarball, File imageCacheDir)
+    {
+        logger.debug("Saving docker image: " + imageName + " to cache: " + tarball.getAbsolutePath());
+        //write to a temp file first and then move it in place, so other machines sharing this cache never see a partial tarball
+        File tempFile = null;
+        try (InputStream in = docker.saveImageCmd(imageName).exec())
+        {
+            tempFile = Files.createTempFile(imageCacheDir.toPath(), tarball.getName(), ".tmp").toFile();
+            Files.copy(in, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile.toPath(), tarball.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | DockerException e)
+        {
+            //the cache is only an optimization; don't fail the test because we couldn't write to it
+            logger.warn("Could not save docker image: " + imageName + " to cache: " + tarball.getAbsolutePath() + "; not saving any more images this run.", e);
+            imageCacheSaveFailed = true;
+        } finally
+        {
+            if (tempFile != null)
+            {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Gets the id of an image in the local docker daemon.
+     *
+     * @param imageName Name (and optionally tag) of the image.
+     * @return The image id, or null if the image isn't in the local daemon.
+     */
+    private static String getLocalImageId(String imageName)
+    {
+        try
+        {
+            return docker.inspectImageCmd(imageName).exec().getId();
+        } catch (NotFoundException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the image cache tarball for a docker file. The file may or may not
+     * exist yet.
+     *
+     * @param imageCacheDir Directory containing the cached image tarballs.
+     * @param dockerBoxName Name (tag) of the docker image.
+     * @param hash Hash of the docker file; see getDockerFileHash.
+     * @return The tarball for the current contents of the docker file.
+     */
+    private static File getCachedImageFile(File imageCacheDir, String dockerBoxName, String hash)
+    {
+        return new File(imageCacheDir, dockerBoxName + "-" + hash + ".tar");
+    }
+
+    /**
+     * Gets a hash of the contents of a docker file and of the build context
+     * files next to it (setcassandraip.sh, etc.) that it may copy into the
+     * image. Used to key cached images so that changes to either cause the
+     * image to be rebuilt. Other docker files in the same directory are left
+     * out, so changing one version doesn't invalidate the others.
+     *
+     * @param baseFile Docker file to hash.
+     * @return A hex encoded SHA-1 hash of the docker file and its build
+     * context.
+     */
+    static String getDockerFileHash(File baseFile)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(Files.readAllBytes(baseFile.toPath()));
+            File[] contextFiles = baseFile.getAbsoluteFile().getParentFile().listFiles(new FileFilter()
+            {
+
+                @Override
+                public boolean accept(File file)
+                {
+                    String name = file.getName();
+                    return file.isFile() && !name.startsWith("cassandra") && !name.endsWith("~");//build context files that are not docker files or gedit backups
+                }
+            });
+            Arrays.sort(contextFiles);//listFiles order isn't defined; keep the hash stable
+            for (File contextFile : contextFiles)
+            {
+                digest.update(contextFile.getName().getBytes(StandardCharsets.UTF_8));
+                digest.update(Files.readAllBytes(contextFile.toPath()));
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest())
+            {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (IOException | NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
     }
 
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Jeffrey DeYoung.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.cassandradockertesthelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jeffrey
+ */
+public class ContainerResourceUsageTest
+{
+
+    @Test
+    public void testUpdate()
+    {
+        ContainerResourceUsage usage = new ContainerResourceUsage();
+        usage.update(cpuStats(1000), memoryStats(500), blkioStats(10, 20), networkStats(30, 40));
+        usage.update(cpuStats(3000), memoryStats(200), blkioStats(15, 25), networkStats(35, 45));
+        assertEquals(2, usage.getSamples());
+        assertEquals(3000, usage.getCpuNanos());
+        assertEquals(500, usage.getPeakMemoryRss());
+        assertEquals(15, usage.getBlockReadBytes());
+        assertEquals(25, usage.getBlockWriteBytes());
+        assertEquals(35, usage.getNetworkRxBytes());
+        assertEquals(45, usage.getNetworkTxBytes());
+    }
+
+    @Test
+    public void testUpdateIgnoresZeroedSample()
+    {
+        //docker sends an all zero sample once the container has stopped
+        ContainerResourceUsage usage = new ContainerResourceUsage();
+        usage.update(cpuStats(1000), memoryStats(500), blkioStats(10, 20), networkStats(30, 40));
+        usage.update(cpuStats(0), memoryStats(0), blkioStats(0, 0), networkStats(0, 0));
+        assertEquals(2, usage.getSamples());
+        assertEquals(1000, usage.getCpuNanos());
+        assertEquals(500, usage.getPeakMemoryRss());
+        assertEquals(10, usage.getBlockReadBytes());
+        assertEquals(20, usage.getBlockWriteBytes());
+        assertEquals(30, usage.getNetworkRxBytes());
+        assertEquals(40, usage.getNetworkTxBytes());
+    }
+
+    @Test
+    public void testUpdateWithoutNetwork()
+    {
+        ContainerResourceUsage usage = new ContainerResourceUsage();
+        usage.update(cpuStats(1000), memoryStats(500), blkioStats(10, 20), null);
+        assertFalse(usage.isNetworkAvailable());
+        assertTrue(usage.toString().contains("network rx/tx: n/a"));
+        usage.update(cpuStats(1000), memoryStats(500), blkioStats(10, 20), networkStats(30, 40));
+        assertTrue(usage.isNetworkAvailable());
+    }
+
+    @Test
+    public void testUpdatePerInterfaceNetwork()
+    {
+        ContainerResourceUsage usage = new ContainerResourceUsage();
+        Map<String, Object> networks = new HashMap<>();
+        networks.put("eth0", networkStats(30, 40));
+        networks.put("eth1", networkStats(5, 6));
+        usage.update(null, null, null, networks);
+        assertTrue(usage.isNetworkAvailable());
+        assertEquals(35, usage.getNetworkRxBytes());
+        assertEquals(46, usage.getNetworkTxBytes());
+    }
+
+    @Test
+    public void testAdd()
+    {
+        ContainerResourceUsage first = new ContainerResourceUsage();
+        first.update(cpuStats(1000), memoryStats(500), blkioStats(10, 20), networkStats(30, 40));
+        ContainerResourceUsage second = new ContainerResourceUsage();
+        second.update(cpuStats(2000), memoryStats(700), blkioStats(1, 2), networkStats(3, 4));
+        ContainerResourceUsage total = new ContainerResourceUsage();
+        total.add(first);
+        total.add(second);
+        assertEquals(2, total.getSamples());
+        assertEquals(3000, total.getCpuNanos());
+        assertEquals(700, total.getPeakMemoryRss());
+        assertEquals(11, total.getBlockReadBytes());
+        assertEquals(22, total.getBlockWriteBytes());
+        assertEquals(33, total.getNetworkRxBytes());
+        assertEquals(44, total.getNetworkTxBytes());
+    }
+
+    private static Map<String, Object> cpuStats(long totalUsage)
+    {
+        Map<String, Object> cpuUsage = new HashMap<>();
+        cpuUsage.put("total_usage", totalUsage);
+        Map<String, Object> cpuStats = new HashMap<>();
+        cpuStats.put("cpu_usage", cpuUsage);
+        return cpuStats;
+    }
+
+    private static Map<String, Object> memoryStats(long rss)
+    {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("rss", rss);
+        Map<String, Object> memoryStats = new HashMap<>();
+        memoryStats.put("usage", rss * 2);
+        memoryStats.put("stats", stats);
+        return memoryStats;
+    }
+
+    private static Map<String, Object> blkioStats(long read, long write)
+    {
+        List<Object> ops = new ArrayList<>();
+        Map<String, Object> readOp = new HashMap<>();
+        readOp.put("op", "Read");
+        readOp.put("value", read);
+        ops.add(readOp);
+        Map<String, Object> writeOp = new HashMap<>();
+        writeOp.put("op", "Write");
+        writeOp.put("value", write);
+        ops.add(writeOp);
+        Map<String, Object> blkioStats = new HashMap<>();
+        blkioStats.put("io_service_bytes_recursive", ops);
+        return blkioStats;
+    }
+
+    private static Map<String, Object> networkStats(long rx, long tx)
+    {
+        Map<String, Object> networkStats = new HashMap<>();
+        networkStats.put("rx_bytes", rx);
+        networkStats.put("tx_bytes", tx);
+        return networkStats;
+    }
+}
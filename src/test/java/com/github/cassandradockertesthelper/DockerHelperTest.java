@@ -16,11 +16,19 @@
 package com.github.cassandradockertesthelper;
 
 import com.github.cassandradockertesthelper.DockerHelper;
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.NotFoundException;
+import com.github.dockerjava.core.DockerClientBuilder;
+import com.github.dockerjava.core.DockerClientConfig;
 import java.io.File;
 import java.io.FilenameFilter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertNotNull;
 import static junit.framework.TestCase.assertNotSame;
@@ -48,6 +56,13 @@ public class DockerHelperTest
      */
     private static final Logger logger = LoggerFactory.getLogger(DockerHelperTest.class);
 
+    /**
+     * Docker client for checking up on DockerHelper; same config as
+     * DockerHelper uses.
+     */
+    private static final DockerClient docker = DockerClientBuilder.getInstance(DockerClientConfig.createDefaultConfigBuilder()
+            .withUri("http://localhost:2375").build()).build();
+
     /**
      * Docker file that this particular test is running with.
      */
@@ -133,4 +148,109 @@ public class DockerHelperTest
         assertFalse(DockerHelper.isBoxRunning(id2));
     }
 
+    @Test
+    public void testGetDockerFileHash() throws Exception
+    {
+        logger.info("Testing docker file hash. " + dockerFile.getName());
+        String hash = DockerHelper.getDockerFileHash(dockerFile);
+        assertEquals(40, hash.length());
+        assertEquals(hash, DockerHelper.getDockerFileHash(dockerFile));
+        //copy the docker file and the script it copies into a build context of our own, so we can change them
+        File contextDir = Files.createTempDirectory("dockercontext").toFile();
+        File changedDockerFile = new File(contextDir, dockerFile.getName());
+        File changedScript = new File(contextDir, "setcassandraip.sh");
+        try
+        {
+            Files.copy(dockerFile.toPath(), changedDockerFile.toPath());
+            Files.copy(new File(dockerFile.getParentFile(), "setcassandraip.sh").toPath(), changedScript.toPath());
+            String copiedHash = DockerHelper.getDockerFileHash(changedDockerFile);
+            assertEquals(copiedHash, DockerHelper.getDockerFileHash(changedDockerFile));
+            Files.write(changedScript.toPath(), "\necho changed".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            String changedScriptHash = DockerHelper.getDockerFileHash(changedDockerFile);
+            assertFalse(copiedHash.equals(changedScriptHash));
+            Files.write(changedDockerFile.toPath(), "\nRUN echo changed".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            assertFalse(changedScriptHash.equals(DockerHelper.getDockerFileHash(changedDockerFile)));
+        } finally
+        {
+            changedDockerFile.delete();
+            changedScript.delete();
+            contextDir.delete();
+        }
+    }
+
+    @Test
+    public void testCycleWithImageCache() throws Exception
+    {
+        logger.info("Testing docker helper with an image cache. " + dockerFile.getName());
+        String hash = DockerHelper.getDockerFileHash(dockerFile);
+        File cacheDir = Files.createTempDirectory("imagecache").toFile();
+        File tarball = new File(cacheDir, dockerFile.getName() + "-" + hash + ".tar");
+        System.setProperty(DockerHelper.IMAGE_CACHE_PROPERTY, cacheDir.getAbsolutePath());
+        try
+        {
+            //cache miss: make sure the image isn't already known by its hash, so it gets built and saved
+            removeImageTag(dockerFile.getName() + ":" + hash);
+            String id = DockerHelper.spinUpDockerBox(dockerFile.getName(), dockerFile);
+            assertTrue(DockerHelper.isBoxRunning(id));
+            DockerHelper.spinDownDockerBox(id);
+            assertTrue(tarball.isFile());
+            long lastModified = tarball.lastModified();
+            //cache hit: the image has to come back from the tarball
+            removeImageTag(dockerFile.getName() + ":" + hash);
+            id = DockerHelper.spinUpDockerBox(dockerFile.getName(), dockerFile);
+            assertTrue(DockerHelper.isBoxRunning(id));
+            DockerHelper.spinDownDockerBox(id);
+            assertEquals(lastModified, tarball.lastModified());
+            assertEquals(1, cacheDir.listFiles().length);
+        } finally
+        {
+            System.clearProperty(DockerHelper.IMAGE_CACHE_PROPERTY);
+            for (File f : cacheDir.listFiles())
+            {
+                f.delete();
+            }
+            cacheDir.delete();
+        }
+    }
+
+    @Test
+    public void testCycleWithStatsSampling() throws Exception
+    {
+        logger.info("Testing docker helper with stats sampling. " + dockerFile.getName());
+        DockerHelper.setStatsSamplingEnabled(true);
+        try
+        {
+            String id = DockerHelper.spinUpDockerBox(dockerFile.getName(), dockerFile, "testCycleWithStatsSampling");
+            assertTrue(DockerHelper.isBoxRunning(id));
+            Thread.sleep(2000);//docker sends stats about once a second; give it time to send a few
+            DockerHelper.spinDownDockerBox(id);
+            assertFalse(DockerHelper.isBoxRunning(id));
+            assertTrue(DockerHelper.getResourceUsageByContainer().get(id).getSamples() > 0);
+            assertTrue(DockerHelper.getResourceUsageByContainer().get(id).getCpuNanos() > 0);
+            assertTrue(DockerHelper.getResourceUsageByImage().containsKey(dockerFile.getName()));
+            assertTrue(DockerHelper.getResourceUsageByTest().containsKey("testCycleWithStatsSampling"));
+            DockerHelper.logStatsSummary();
+        } finally
+        {
+            DockerHelper.setStatsSamplingEnabled(false);
+        }
+    }
+
+    /**
+     * Removes a tag from an image in the local docker daemon. The image itself
+     * stays as long as other tags or containers still reference it.
+     *
+     * @param imageName Name and tag to remove.
+     */
+    private static void removeImageTag(String imageName)
+    {
+        try
+        {
+            docker.removeImageCmd(imageName).exec();
+        } catch (NotFoundException e)
+        {
+            ;//already gone
+        }
+    }
+
 }